@@ -0,0 +1,425 @@
+/*
+ * Copyright 2025 Matthias Bläsing
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.doppelhelix.lib.clamdclient;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Re-scans content, that was found to be clean, after the signatures of clamd
+ * were updated.
+ *
+ * <p>
+ * Content scanned via {@link #scan(String, InputStream)} is recorded in a
+ * persistent index together with the hash of the data and the signature
+ * version reported by {@link ClamdClient#getVersion()}. After
+ * {@link #start()} the signature version is polled in the background. When it
+ * changes, the indexed content is re-scanned at a limited rate, most recently
+ * scanned content first. Content sharing a hash is only sent to clamd once per
+ * signature version, a shared result is only used after the current data was
+ * hashed again. Content now detected as infected is reported to the listener
+ * and dropped from the index. Failed re-scans are retried with increasing
+ * delay.
+ *
+ * <p>
+ * Intervals must be configured before {@link #start()} is invoked.
+ */
+public class RescanScheduler implements AutoCloseable {
+
+    private static final Logger LOG = System.getLogger(RescanScheduler.class.getName());
+    private static final String HASH_ALGORITHM = "SHA-256";
+    static final int MAX_RETRIES = 5;
+    // Upper bound for the entries read in one tick, when results are shared
+    static final int MAX_READS_PER_TICK = 16;
+    private static final int RELOAD_CHECKS = 12;
+    private static final int RELOAD_CHECK_DELAY = 5_000;
+
+    /**
+     * Provides access to previously scanned content by its id.
+     */
+    public interface ContentSource {
+
+        /**
+         * @return stream with the current data of the content or {@code null}
+         *         if the content does not exist anymore
+         * @throws NoSuchFileException is handled like returning {@code null}
+         */
+        InputStream open(String contentId) throws IOException;
+    }
+
+    private record Pending(ScanIndex.Entry entry, int attempts, long due) {
+    }
+
+    private final ClamdClient client;
+    private final ScanIndex index;
+    private final ContentSource contentSource;
+    private final BiConsumer<String, ScanResult> foundListener;
+    private final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread t = new Thread(r, "clamd-rescan");
+        t.setDaemon(true);
+        return t;
+    });
+    private int versionCheckInterval = 60_000;
+    private int rescanInterval = 1_000;
+    private volatile boolean started;
+    private volatile boolean closed;
+    private volatile String signatureVersion;
+    // Only accessed from the executor thread
+    private String scheduledVersion;
+    private final Queue<Pending> pending = new ArrayDeque<>();
+    private final Queue<Pending> retries = new PriorityQueue<>(Comparator.comparingLong(Pending::due));
+    // Content ids queued, retried or given up in the current pass
+    private final Set<String> passContentIds = new HashSet<>();
+    private final Map<String, ScanResult> passResults = new HashMap<>();
+
+    /**
+     * @param client        client used for scanning and version checks
+     * @param indexFile     file holding the persistent index, created if
+     *                      missing
+     * @param contentSource source to re-read content for re-scanning
+     * @param foundListener invoked with content id and result for content,
+     *                      that is detected as infected by a re-scan
+     */
+    public RescanScheduler(ClamdClient client, Path indexFile, ContentSource contentSource, BiConsumer<String, ScanResult> foundListener) throws IOException {
+        this.client = client;
+        this.index = new ScanIndex(indexFile);
+        this.contentSource = contentSource;
+        this.foundListener = foundListener;
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    }
+
+    public int getVersionCheckInterval() {
+        return versionCheckInterval;
+    }
+
+    public void setVersionCheckInterval(int versionCheckInterval) {
+        if (versionCheckInterval <= 0) {
+            throw new IllegalArgumentException("versionCheckInterval must be positive: " + versionCheckInterval);
+        }
+        this.versionCheckInterval = versionCheckInterval;
+    }
+
+    public int getRescanInterval() {
+        return rescanInterval;
+    }
+
+    /**
+     * @param rescanInterval minimum delay in milliseconds between two
+     *                       background scans, also the base delay for retries
+     */
+    public void setRescanInterval(int rescanInterval) {
+        if (rescanInterval <= 0) {
+            throw new IllegalArgumentException("rescanInterval must be positive: " + rescanInterval);
+        }
+        this.rescanInterval = rescanInterval;
+    }
+
+    /**
+     * Start polling the signature version and re-scanning in the background.
+     * Subsequent invocations have no effect.
+     */
+    public synchronized void start() {
+        if (started || closed) {
+            return;
+        }
+        started = true;
+        executor.scheduleWithFixedDelay(this::checkSignatureVersion, 0, versionCheckInterval, TimeUnit.MILLISECONDS);
+        executor.scheduleWithFixedDelay(this::rescanNext, rescanInterval, rescanInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Trigger a check of the signature version, for example after
+     * {@link ClamdClient#reload()}. clamd loads the new signatures
+     * asynchronously, so the version is checked repeatedly for about a minute
+     * until it changes. Has no effect if the scheduler is not running.
+     */
+    public void signaturesUpdated() {
+        if (!started || closed) {
+            return;
+        }
+        try {
+            executor.execute(() -> checkUntilChanged(scheduledVersion, 0));
+        } catch (RejectedExecutionException ex) {
+            // Closed concurrently
+        }
+    }
+
+    /**
+     * Scan the supplied content and record it in the index, if it is clean.
+     *
+     * <p>
+     * While the scheduler is running, the signature version of the last
+     * background check is recorded, otherwise the version is queried for each
+     * scan.
+     */
+    public ScanResult scan(String contentId, InputStream is) throws IOException {
+        String version = signatureVersion;
+        if (version == null || !started || closed) {
+            version = client.getVersion();
+            signatureVersion = version;
+        }
+        DigestInputStream dis = new DigestInputStream(is, createDigest());
+        ScanResult result = client.scanStream(dis);
+        // The digest is only used for clean content, which was read completely
+        record(contentId, result, dis.getMessageDigest().digest(), version, System.currentTimeMillis());
+        return result;
+    }
+
+    public void flush() throws IOException {
+        index.save();
+    }
+
+    /**
+     * Stop the background processing. A running scan is allowed to finish,
+     * then the index is saved.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        executor.shutdown();
+        try {
+            long timeout = (long) client.getConnectTimeout() + client.getScanTimeout();
+            if (!executor.awaitTermination(timeout, TimeUnit.MILLISECONDS)) {
+                // The running tick saves the index when it finishes
+                LOG.log(Level.WARNING, "Background rescan did not finish in time");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        index.save();
+    }
+
+    private void record(String contentId, ScanResult result, byte[] hash, String version, long scanned) {
+        switch (result.state()) {
+            case OK ->
+                index.put(new ScanIndex.Entry(contentId, hash, version, scanned));
+            case FOUND ->
+                index.remove(contentId);
+            default -> {
+                // Keep the old entry, it is retried
+            }
+        }
+    }
+
+    private void checkUntilChanged(String previousVersion, int attempt) {
+        checkSignatureVersion();
+        if (Objects.equals(previousVersion, scheduledVersion) && attempt < RELOAD_CHECKS && !closed) {
+            try {
+                executor.schedule(() -> checkUntilChanged(previousVersion, attempt + 1), RELOAD_CHECK_DELAY, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException ex) {
+                // Closed concurrently
+            }
+        }
+    }
+
+    /**
+     * Start a new pass if the signature version changed. Entries recorded with
+     * an outdated version after the pass was started (scans running while the
+     * version changed) are added to the running pass.
+     */
+    void checkSignatureVersion() {
+        try {
+            String version = client.getVersion();
+            signatureVersion = version;
+            if (!version.equals(scheduledVersion)) {
+                scheduledVersion = version;
+                pending.clear();
+                retries.clear();
+                passContentIds.clear();
+                passResults.clear();
+            }
+            int added = 0;
+            for (ScanIndex.Entry entry : index.outdated(version)) {
+                if (passContentIds.add(entry.contentId())) {
+                    pending.add(new Pending(entry, 0, 0));
+                    added++;
+                }
+            }
+            if (added > 0) {
+                LOG.log(Level.DEBUG, "Signature version {0}, {1} entries scheduled for rescan", version, added);
+            }
+            index.save();
+        } catch (IOException | RuntimeException ex) {
+            LOG.log(Level.WARNING, "Failed to check signature version", ex);
+        }
+    }
+
+    /**
+     * Process pending entries until clamd was contacted once or
+     * {@link #MAX_READS_PER_TICK} entries were read.
+     */
+    void rescanNext() {
+        Pending next;
+        int reads = 0;
+        while (!closed && reads < MAX_READS_PER_TICK && (next = nextPending()) != null) {
+            try {
+                Boolean scanned = rescan(next);
+                if (scanned == null) {
+                    continue;
+                }
+                reads++;
+                if (scanned) {
+                    break;
+                }
+            } catch (IOException | RuntimeException ex) {
+                LOG.log(Level.WARNING, "Failed to rescan " + next.entry().contentId(), ex);
+                retry(next);
+                break;
+            }
+        }
+        if (closed) {
+            // close() might not have waited for this tick
+            try {
+                index.save();
+            } catch (IOException ex) {
+                LOG.log(Level.WARNING, "Failed to save scan index", ex);
+            }
+        }
+    }
+
+    private Pending nextPending() {
+        Pending retry = retries.peek();
+        if (retry != null && retry.due() - System.nanoTime() <= 0) {
+            return retries.poll();
+        }
+        return pending.poll();
+    }
+
+    private void retry(Pending failed) {
+        if (failed.attempts() >= MAX_RETRIES) {
+            LOG.log(Level.WARNING, "Giving up rescan of {0} until the next signature update", failed.entry().contentId());
+            return;
+        }
+        long delay = TimeUnit.MILLISECONDS.toNanos((long) rescanInterval << failed.attempts());
+        retries.add(new Pending(failed.entry(), failed.attempts() + 1, System.nanoTime() + delay));
+    }
+
+    /**
+     * @return {@code true} if clamd was contacted for the entry,
+     *         {@code false} if only the content was read, {@code null} if
+     *         the entry was skipped without reading
+     */
+    private Boolean rescan(Pending next) throws IOException {
+        String version = scheduledVersion;
+        String contentId = next.entry().contentId();
+        ScanIndex.Entry current = index.get(contentId);
+        if (current == null || current.signatureVersion().equals(version)) {
+            // Removed or scanned again since the pass was scheduled
+            passContentIds.remove(contentId);
+            return null;
+        }
+        String recordedHashKey = HexFormat.of().formatHex(current.hash());
+        ScanResult result = passResults.get(recordedHashKey);
+        byte[] hash = current.hash();
+        if (result != null) {
+            // Only reuse the result if the content did not change since it
+            // was recorded
+            try (InputStream is = open(contentId)) {
+                if (is == null) {
+                    index.remove(contentId);
+                    passContentIds.remove(contentId);
+                    return false;
+                }
+                if (!Arrays.equals(hash(is), hash)) {
+                    result = null;
+                }
+            }
+        }
+        boolean scanned = result == null;
+        if (scanned) {
+            try (InputStream is = open(contentId)) {
+                if (is == null) {
+                    index.remove(contentId);
+                    passContentIds.remove(contentId);
+                    return false;
+                }
+                DigestInputStream dis = new DigestInputStream(is, createDigest());
+                result = client.scanStream(dis);
+                if (result.state() == ScanState.ERROR) {
+                    retry(next);
+                    return true;
+                }
+                // clamd replies early on detections, read the remainder so
+                // that the digest covers the complete data
+                dis.transferTo(OutputStream.nullOutputStream());
+                hash = dis.getMessageDigest().digest();
+                passResults.put(HexFormat.of().formatHex(hash), result);
+            }
+        }
+        record(contentId, result, hash, version, current.scanned());
+        // Done for this pass, a later outdated record is scheduled again
+        passContentIds.remove(contentId);
+        if (result.state() == ScanState.FOUND) {
+            try {
+                foundListener.accept(contentId, result);
+            } catch (RuntimeException ex) {
+                LOG.log(Level.WARNING, "Listener failed for " + contentId, ex);
+            }
+        }
+        return scanned;
+    }
+
+    private InputStream open(String contentId) throws IOException {
+        try {
+            return contentSource.open(contentId);
+        } catch (NoSuchFileException ex) {
+            return null;
+        }
+    }
+
+    private static byte[] hash(InputStream is) throws IOException {
+        DigestInputStream dis = new DigestInputStream(is, createDigest());
+        dis.transferTo(OutputStream.nullOutputStream());
+        return dis.getMessageDigest().digest();
+    }
+
+    private static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2025 Matthias Bläsing
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.doppelhelix.lib.clamdclient;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Persistent index of content, that was found to be clean. For each content
+ * id the hash of the scanned data, the signature version used for the scan
+ * and the time of the scan are recorded.
+ *
+ * <p>
+ * The file format stores each distinct signature version only once, so that
+ * the per entry overhead is the content id, the hash and a few bytes.
+ */
+class ScanIndex {
+
+    private static final int MAGIC = 0x434C4958; // "CLIX"
+    private static final int FORMAT_VERSION = 1;
+
+    record Entry(String contentId, byte[] hash, String signatureVersion, long scanned) {
+    }
+
+    private final Path file;
+    private final Map<String, Entry> entries = new HashMap<>();
+    private boolean dirty;
+
+    ScanIndex(Path file) throws IOException {
+        this.file = file;
+        if (Files.exists(file)) {
+            load();
+        }
+    }
+
+    synchronized void put(Entry entry) {
+        entries.put(entry.contentId(), entry);
+        dirty = true;
+    }
+
+    synchronized Entry get(String contentId) {
+        return entries.get(contentId);
+    }
+
+    synchronized void remove(String contentId) {
+        if (entries.remove(contentId) != null) {
+            dirty = true;
+        }
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return entries not scanned with the supplied signature version, most
+     *         recently scanned entries first
+     */
+    synchronized List<Entry> outdated(String signatureVersion) {
+        List<Entry> result = new ArrayList<>();
+        for (Entry e : entries.values()) {
+            if (!e.signatureVersion().equals(signatureVersion)) {
+                result.add(e);
+            }
+        }
+        result.sort(Comparator.comparingLong(Entry::scanned).reversed());
+        return result;
+    }
+
+    synchronized void save() throws IOException {
+        if (!dirty) {
+            return;
+        }
+        Map<String, Integer> versions = new LinkedHashMap<>();
+        for (Entry e : entries.values()) {
+            versions.putIfAbsent(e.signatureVersion(), versions.size());
+        }
+        Path parent = file.toAbsolutePath().getParent();
+        Path tmp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+        try {
+            try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                dos.writeInt(MAGIC);
+                dos.writeInt(FORMAT_VERSION);
+                dos.writeInt(versions.size());
+                for (String version : versions.keySet()) {
+                    writeString(dos, version);
+                }
+                dos.writeInt(entries.size());
+                for (Entry e : entries.values()) {
+                    writeString(dos, e.contentId());
+                    dos.writeByte(e.hash().length);
+                    dos.write(e.hash());
+                    dos.writeInt(versions.get(e.signatureVersion()));
+                    dos.writeLong(e.scanned());
+                }
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        dirty = false;
+    }
+
+    private void load() throws IOException {
+        long fileSize = Files.size(file);
+        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (dis.readInt() != MAGIC) {
+                throw new IOException("Not a scan index: " + file);
+            }
+            int formatVersion = dis.readInt();
+            if (formatVersion != FORMAT_VERSION) {
+                throw new IOException("Unsupported scan index version: " + formatVersion);
+            }
+            String[] versions = new String[readCount(dis, fileSize)];
+            for (int i = 0; i < versions.length; i++) {
+                versions[i] = readString(dis, fileSize);
+            }
+            int count = readCount(dis, fileSize);
+            for (int i = 0; i < count; i++) {
+                String contentId = readString(dis, fileSize);
+                byte[] hash = new byte[dis.readUnsignedByte()];
+                dis.readFully(hash);
+                int versionIndex = dis.readInt();
+                if (versionIndex < 0 || versionIndex >= versions.length) {
+                    throw new IOException("Invalid signature version reference in scan index: " + versionIndex);
+                }
+                String version = versions[versionIndex];
+                long scanned = dis.readLong();
+                entries.put(contentId, new Entry(contentId, hash, version, scanned));
+            }
+        }
+    }
+
+    // Length prefixed instead of writeUTF, which is limited to 65535 bytes
+    private static void writeString(DataOutputStream dos, String value) throws IOException {
+        byte[] data = value.getBytes(UTF_8);
+        dos.writeInt(data.length);
+        dos.write(data);
+    }
+
+    private static String readString(DataInputStream dis, long fileSize) throws IOException {
+        byte[] data = new byte[readCount(dis, fileSize)];
+        dis.readFully(data);
+        return new String(data, UTF_8);
+    }
+
+    private static int readCount(DataInputStream dis, long fileSize) throws IOException {
+        int count = dis.readInt();
+        if (count < 0 || count > fileSize) {
+            throw new IOException("Invalid length in scan index: " + count);
+        }
+        return count;
+    }
+}
@@ -0,0 +1,375 @@
+/*
+ * Copyright 2025 Matthias Bläsing
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.doppelhelix.lib.clamdclient;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class RescanSchedulerTest {
+
+    private static final String OLD_VERSION = "ClamAV 1.4.3/27690/Sat Jul  5 10:34:52 2025";
+    private static final String NEW_VERSION = "ClamAV 1.4.3/27691/Sun Jul  6 10:34:52 2025";
+    private static final String CLEAN = "clean";
+    private static final String INFECTED = "infected-" + "x".repeat(10_000);
+
+    /**
+     * Stub, that reports content starting with "infected" as FOUND and
+     * replies early in that case, like clamd does.
+     */
+    private static class StubClient extends ClamdClient {
+
+        volatile String version = OLD_VERSION;
+        final List<String> scanned = new ArrayList<>();
+        int failures;
+        int errors;
+        Runnable onScan = () -> {};
+
+        StubClient() {
+            super("localhost", 3310);
+        }
+
+        @Override
+        public String getVersion() throws IOException {
+            return version;
+        }
+
+        @Override
+        public synchronized ScanResult scanStream(InputStream is) throws IOException {
+            onScan.run();
+            if (failures > 0) {
+                failures--;
+                throw new IOException("Connection refused");
+            }
+            byte[] start = is.readNBytes(8);
+            String prefix = new String(start, UTF_8);
+            if (prefix.equals("infected")) {
+                scanned.add(prefix);
+                return new ScanResult(ScanState.FOUND, "stream: Test.Virus FOUND", "Test.Virus");
+            }
+            String content = prefix + new String(is.readAllBytes(), UTF_8);
+            scanned.add(content);
+            if (errors > 0) {
+                errors--;
+                return new ScanResult(ScanState.ERROR, "stream: Temporary failure ERROR", null);
+            }
+            return new ScanResult(ScanState.OK, "stream: OK", null);
+        }
+    }
+
+    @TempDir
+    Path tempDir;
+
+    private StubClient client;
+    private Map<String, String> contents;
+    private Map<String, ScanResult> found;
+    private Map<String, Integer> opens;
+    private Path indexFile;
+
+    @BeforeEach
+    public void setUp() {
+        client = new StubClient();
+        contents = new ConcurrentHashMap<>();
+        found = new ConcurrentHashMap<>();
+        opens = new ConcurrentHashMap<>();
+        indexFile = tempDir.resolve("scan.idx");
+    }
+
+    private RescanScheduler createScheduler() throws IOException {
+        RescanScheduler scheduler = new RescanScheduler(
+                client,
+                indexFile,
+                id -> {
+                    opens.merge(id, 1, Integer::sum);
+                    return contents.containsKey(id) ? new ByteArrayInputStream(contents.get(id).getBytes(UTF_8)) : null;
+                },
+                found::put);
+        scheduler.setRescanInterval(1);
+        return scheduler;
+    }
+
+    private void index(String contentId, String content, long scanned) throws Exception {
+        ScanIndex index = new ScanIndex(indexFile);
+        byte[] hash = MessageDigest.getInstance("SHA-256").digest(content.getBytes(UTF_8));
+        index.put(new ScanIndex.Entry(contentId, hash, OLD_VERSION, scanned));
+        index.save();
+        contents.put(contentId, content);
+    }
+
+    private static void runPass(RescanScheduler scheduler, int ticks) {
+        scheduler.checkSignatureVersion();
+        for (int i = 0; i < ticks; i++) {
+            scheduler.rescanNext();
+        }
+    }
+
+    // Ticks spaced so that retries with a rescan interval of 1 ms are due
+    private static void runPassWithRetries(RescanScheduler scheduler, int ticks) throws InterruptedException {
+        scheduler.checkSignatureVersion();
+        for (int i = 0; i < ticks; i++) {
+            Thread.sleep(40);
+            scheduler.rescanNext();
+        }
+    }
+
+    @Test
+    public void testScanRecordsCleanContent() throws Exception {
+        try (RescanScheduler scheduler = createScheduler()) {
+            assertEquals(ScanState.OK, scheduler.scan("a", new ByteArrayInputStream(CLEAN.getBytes(UTF_8))).state());
+            assertEquals(ScanState.FOUND, scheduler.scan("b", new ByteArrayInputStream(INFECTED.getBytes(UTF_8))).state());
+            client.version = NEW_VERSION;
+            scheduler.scan("c", new ByteArrayInputStream(CLEAN.getBytes(UTF_8)));
+        }
+        ScanIndex index = new ScanIndex(indexFile);
+        assertEquals(OLD_VERSION, index.get("a").signatureVersion());
+        assertNull(index.get("b"));
+        // Without start() the version is queried for each scan
+        assertEquals(NEW_VERSION, index.get("c").signatureVersion());
+    }
+
+    @Test
+    public void testVersionChangeRescansMostRecentFirst() throws Exception {
+        index("a", "content a", 100);
+        index("b", "content b", 300);
+        index("c", "content c", 200);
+        try (RescanScheduler scheduler = createScheduler()) {
+            runPass(scheduler, 5);
+            assertEquals(List.of(), client.scanned);
+
+            client.version = NEW_VERSION;
+            // Each tick contacts clamd at most once
+            scheduler.checkSignatureVersion();
+            scheduler.rescanNext();
+            assertEquals(List.of("content b"), client.scanned);
+            scheduler.rescanNext();
+            scheduler.rescanNext();
+            scheduler.rescanNext();
+            assertEquals(List.of("content b", "content c", "content a"), client.scanned);
+        }
+        ScanIndex index = new ScanIndex(indexFile);
+        assertEquals(NEW_VERSION, index.get("a").signatureVersion());
+        assertEquals(100, index.get("a").scanned());
+        assertTrue(found.isEmpty());
+    }
+
+    @Test
+    public void testFoundIsReported() throws Exception {
+        index("a", CLEAN, 100);
+        index("b", "other", 200);
+        contents.put("b", INFECTED);
+        client.version = NEW_VERSION;
+        try (RescanScheduler scheduler = createScheduler()) {
+            runPass(scheduler, 2);
+        }
+        assertEquals(1, found.size());
+        assertEquals("Test.Virus", found.get("b").virus());
+        ScanIndex index = new ScanIndex(indexFile);
+        assertNull(index.get("b"));
+        assertEquals(NEW_VERSION, index.get("a").signatureVersion());
+    }
+
+    @Test
+    public void testSameHashScannedOnce() throws Exception {
+        index("a", CLEAN, 100);
+        index("b", CLEAN, 200);
+        index("c", CLEAN, 300);
+        client.version = NEW_VERSION;
+        try (RescanScheduler scheduler = createScheduler()) {
+            runPass(scheduler, 3);
+            assertEquals(List.of(CLEAN), client.scanned);
+        }
+        ScanIndex index = new ScanIndex(indexFile);
+        for (String id : List.of("a", "b", "c")) {
+            assertEquals(NEW_VERSION, index.get(id).signatureVersion());
+        }
+    }
+
+    @Test
+    public void testChangedContentDoesNotPoisonSharedHash() throws Exception {
+        // "b" was clean with the same data as "a", but changed since
+        index("a", CLEAN, 100);
+        index("b", CLEAN, 200);
+        contents.put("b", INFECTED);
+        client.version = NEW_VERSION;
+        try (RescanScheduler scheduler = createScheduler()) {
+            runPass(scheduler, 2);
+        }
+        assertEquals(List.of("b"), List.copyOf(found.keySet()));
+        assertEquals(List.of("infected", CLEAN), client.scanned);
+        assertEquals(NEW_VERSION, new ScanIndex(indexFile).get("a").signatureVersion());
+    }
+
+    @Test
+    public void testChangedContentIsNotDeduplicated() throws Exception {
+        // "a" is scanned first and clean, "b" shares the recorded hash but
+        // its data changed
+        index("a", CLEAN, 200);
+        index("b", CLEAN, 100);
+        contents.put("b", INFECTED);
+        client.version = NEW_VERSION;
+        try (RescanScheduler scheduler = createScheduler()) {
+            runPass(scheduler, 2);
+        }
+        assertEquals(List.of("b"), List.copyOf(found.keySet()));
+        assertEquals(List.of(CLEAN, "infected"), client.scanned);
+    }
+
+    @Test
+    public void testFailuresAreRetried() throws Exception {
+        index("a", CLEAN, 100);
+        client.version = NEW_VERSION;
+        client.failures = 2;
+        client.errors = 1;
+        try (RescanScheduler scheduler = createScheduler()) {
+            runPassWithRetries(scheduler, 4);
+        }
+        assertEquals(NEW_VERSION, new ScanIndex(indexFile).get("a").signatureVersion());
+    }
+
+    @Test
+    public void testRetriesAreCapped() throws Exception {
+        index("a", CLEAN, 100);
+        client.version = NEW_VERSION;
+        client.errors = Integer.MAX_VALUE;
+        try (RescanScheduler scheduler = createScheduler()) {
+            runPassWithRetries(scheduler, RescanScheduler.MAX_RETRIES + 5);
+        }
+        assertEquals(RescanScheduler.MAX_RETRIES + 1, client.scanned.size());
+        assertEquals(OLD_VERSION, new ScanIndex(indexFile).get("a").signatureVersion());
+    }
+
+    @Test
+    public void testBackgroundProcessing() throws Exception {
+        index("a", "other", 100);
+        contents.put("a", INFECTED);
+        CountDownLatch latch = new CountDownLatch(1);
+        RescanScheduler scheduler = new RescanScheduler(
+                client,
+                indexFile,
+                id -> new ByteArrayInputStream(contents.get(id).getBytes(UTF_8)),
+                (id, result) -> latch.countDown());
+        scheduler.setRescanInterval(10);
+        scheduler.setVersionCheckInterval(10);
+        scheduler.start();
+        scheduler.start();
+        client.version = NEW_VERSION;
+        scheduler.signaturesUpdated();
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        scheduler.close();
+        scheduler.close();
+        scheduler.signaturesUpdated();
+        assertEquals(1, client.scanned.size());
+    }
+
+    @Test
+    public void testScanDuringVersionChangeIsRescanned() throws Exception {
+        try (RescanScheduler scheduler = createScheduler()) {
+            scheduler.checkSignatureVersion();
+            // The version changes and a pass is started, while "a" is
+            // scanned with the old signatures
+            client.onScan = () -> {
+                client.version = NEW_VERSION;
+                scheduler.checkSignatureVersion();
+            };
+            contents.put("a", CLEAN);
+            scheduler.scan("a", new ByteArrayInputStream(CLEAN.getBytes(UTF_8)));
+            client.onScan = () -> {};
+            scheduler.flush();
+            assertEquals(OLD_VERSION, new ScanIndex(indexFile).get("a").signatureVersion());
+
+            runPass(scheduler, 1);
+        }
+        assertEquals(List.of(CLEAN, CLEAN), client.scanned);
+        assertEquals(NEW_VERSION, new ScanIndex(indexFile).get("a").signatureVersion());
+    }
+
+    @Test
+    public void testDeletedContentIsRemoved() throws Exception {
+        index("a", CLEAN, 100);
+        index("b", "other", 200);
+        contents.remove("a");
+        contents.remove("b");
+        client.version = NEW_VERSION;
+        try (RescanScheduler scheduler = new RescanScheduler(
+                client,
+                indexFile,
+                id -> {
+                    throw new NoSuchFileException(id);
+                },
+                found::put)) {
+            runPass(scheduler, 2);
+        }
+        assertEquals(0, new ScanIndex(indexFile).size());
+        assertEquals(List.of(), client.scanned);
+    }
+
+    @Test
+    public void testScannedContentIsReadOnce() throws Exception {
+        index("a", "content a", 200);
+        index("b", "content b", 100);
+        client.version = NEW_VERSION;
+        try (RescanScheduler scheduler = createScheduler()) {
+            runPass(scheduler, 2);
+        }
+        assertEquals(Map.of("a", 1, "b", 1), opens);
+    }
+
+    @Test
+    public void testReadsPerTickAreLimited() throws Exception {
+        int count = RescanScheduler.MAX_READS_PER_TICK * 2 + 1;
+        for (int i = 0; i < count; i++) {
+            index("id" + i, CLEAN, i);
+        }
+        client.version = NEW_VERSION;
+        try (RescanScheduler scheduler = createScheduler()) {
+            runPass(scheduler, 1);
+            assertEquals(1, opens.values().stream().mapToInt(i -> i).sum());
+            scheduler.rescanNext();
+            assertEquals(1 + RescanScheduler.MAX_READS_PER_TICK, opens.values().stream().mapToInt(i -> i).sum());
+            scheduler.rescanNext();
+            scheduler.rescanNext();
+        }
+        assertEquals(List.of(CLEAN), client.scanned);
+        assertEquals(0, new ScanIndex(indexFile).outdated(NEW_VERSION).size());
+    }
+
+    @Test
+    @SuppressWarnings("ThrowableResultIgnored")
+    public void testInvalidIntervals() throws Exception {
+        try (RescanScheduler scheduler = createScheduler()) {
+            assertThrows(IllegalArgumentException.class, () -> scheduler.setRescanInterval(0));
+            assertThrows(IllegalArgumentException.class, () -> scheduler.setVersionCheckInterval(-1));
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2025 Matthias Bläsing
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.doppelhelix.lib.clamdclient;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class ScanIndexTest {
+
+    private static final String OLD_VERSION = "ClamAV 1.4.3/27690/Sat Jul  5 10:34:52 2025";
+    private static final String NEW_VERSION = "ClamAV 1.4.3/27691/Sun Jul  6 10:34:52 2025";
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testPersistence() throws IOException {
+        Path file = tempDir.resolve("scan.idx");
+        ScanIndex index = new ScanIndex(file);
+        index.put(new ScanIndex.Entry("a", new byte[]{1, 2, 3}, OLD_VERSION, 100));
+        index.put(new ScanIndex.Entry("b", new byte[]{4, 5, 6}, NEW_VERSION, 200));
+        index.put(new ScanIndex.Entry("c", new byte[]{7, 8, 9}, OLD_VERSION, 300));
+        index.remove("c");
+        index.save();
+
+        ScanIndex reloaded = new ScanIndex(file);
+        assertEquals(2, reloaded.size());
+        assertArrayEquals(new byte[]{1, 2, 3}, reloaded.get("a").hash());
+        assertEquals(OLD_VERSION, reloaded.get("a").signatureVersion());
+        assertEquals(100, reloaded.get("a").scanned());
+        assertEquals(NEW_VERSION, reloaded.get("b").signatureVersion());
+        assertNull(reloaded.get("c"));
+    }
+
+    @Test
+    public void testOutdatedMostRecentFirst() throws IOException {
+        ScanIndex index = new ScanIndex(tempDir.resolve("scan.idx"));
+        index.put(new ScanIndex.Entry("a", new byte[]{1}, OLD_VERSION, 100));
+        index.put(new ScanIndex.Entry("b", new byte[]{2}, NEW_VERSION, 400));
+        index.put(new ScanIndex.Entry("c", new byte[]{3}, OLD_VERSION, 300));
+        index.put(new ScanIndex.Entry("d", new byte[]{4}, OLD_VERSION, 200));
+
+        List<String> outdated = index.outdated(NEW_VERSION).stream()
+                .map(ScanIndex.Entry::contentId)
+                .toList();
+        assertEquals(List.of("c", "d", "a"), outdated);
+    }
+
+    @Test
+    public void testLongContentId() throws IOException {
+        Path file = tempDir.resolve("scan.idx");
+        String contentId = "x".repeat(70_000);
+        ScanIndex index = new ScanIndex(file);
+        index.put(new ScanIndex.Entry(contentId, new byte[]{1}, OLD_VERSION, 100));
+        index.save();
+
+        assertEquals(OLD_VERSION, new ScanIndex(file).get(contentId).signatureVersion());
+    }
+
+    @Test
+    @SuppressWarnings("ThrowableResultIgnored")
+    public void testInvalidVersionReference() throws IOException {
+        Path file = tempDir.resolve("scan.idx");
+        try (DataOutputStream dos = new DataOutputStream(Files.newOutputStream(file))) {
+            dos.writeInt(0x434C4958);
+            dos.writeInt(1);
+            dos.writeInt(1);
+            dos.writeInt(1);
+            dos.write('v');
+            dos.writeInt(1);
+            dos.writeInt(1);
+            dos.write('a');
+            dos.writeByte(0);
+            dos.writeInt(5);
+            dos.writeLong(100);
+        }
+        assertThrows(IOException.class, () -> new ScanIndex(file));
+    }
+}